@@ -0,0 +1,328 @@
+/**
+ * Copyright (C) 2020 BonitaSoft S.A.
+ * BonitaSoft, 32 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.bonitasoft.connectors.document.templating;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.IOUtils;
+
+import fr.opensagres.xdocreport.core.XDocReportException;
+import fr.opensagres.xdocreport.core.io.XDocArchive;
+import fr.opensagres.xdocreport.document.IXDocReport;
+import fr.opensagres.xdocreport.document.registry.XDocReportRegistry;
+import fr.opensagres.xdocreport.template.TemplateEngineKind;
+
+/**
+ * Re-render only the parts of a document impacted by a set of changed replacement keys.
+ * <p>
+ * The regions of a document are the XML entries of its archive. The template, as preprocessed by XDocReport, is analyzed
+ * to know which root keys each entry references, a reduced template containing only the impacted entries (plus stubs of
+ * the ones needed to recognize the document format) is rendered, and the rendered entries are spliced into the previous
+ * output.
+ */
+class DeltaRendering {
+
+    private static final Pattern REFERENCE = Pattern.compile("\\$!?\\{?([A-Za-z][A-Za-z0-9_-]*)");
+    // A reference cut by a markup tag, e.g. a `$` and its name in two different runs of a Word document
+    private static final Pattern CUT_REFERENCE = Pattern.compile("\\$!?\\{?(<|$)");
+    private static final Pattern LOOP_VARIABLE = Pattern
+            .compile("#\\{?foreach\\}?\\s*\\(\\s*\\$!?\\{?([A-Za-z][A-Za-z0-9_-]*)");
+    private static final List<String> VELOCITY_REFERENCES = Arrays.asList("foreach", "velocityCount",
+            "velocityHasNext");
+    // Directives whose effect may cross entries or depend on state set elsewhere in the template
+    private static final Pattern STRUCTURAL_DIRECTIVE = Pattern
+            .compile("#\\{?(set|macro|define|parse|include|evaluate)\\b");
+    private static final List<String> DOCX_REQUIRED_ENTRIES = Arrays.asList("[Content_Types].xml", "_rels/.rels",
+            "word/document.xml", "word/_rels/document.xml.rels", "word/styles.xml");
+    private static final List<String> ODT_REQUIRED_ENTRIES = Arrays.asList("mimetype", "META-INF/manifest.xml",
+            "content.xml", "styles.xml");
+    private static final String DOCX_BODY = "word/document.xml";
+    private static final String ODT_CONTENT = "content.xml";
+    private static final String ODT_STYLES = "styles.xml";
+
+    // Analyses of the last templates used, so that a template is preprocessed once for all the revisions it generates
+    private static final int MAX_CACHED_ANALYSES = 16;
+    private static final Map<String, DeltaRendering> ANALYSES = Collections
+            .synchronizedMap(new LinkedHashMap<String, DeltaRendering>(MAX_CACHED_ANALYSES, 0.75f, true) {
+
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, DeltaRendering> eldest) {
+                    return size() > MAX_CACHED_ANALYSES;
+                }
+            });
+
+    private final Map<String, byte[]> entries;
+    private final Map<String, Set<String>> dependencies;
+    private final Set<String> loopVariables;
+    private final boolean reliable;
+
+    private DeltaRendering(Map<String, byte[]> entries, Map<String, Set<String>> dependencies,
+            Set<String> loopVariables, boolean reliable) {
+        this.entries = entries;
+        this.dependencies = dependencies;
+        this.loopVariables = loopVariables;
+        this.reliable = reliable;
+    }
+
+    /**
+     * @return the analysis of the given template, computed only if the same template content has not been analyzed
+     *         recently
+     */
+    static DeltaRendering of(byte[] template) throws IOException, XDocReportException {
+        String key = sha256(template);
+        DeltaRendering deltaRendering = ANALYSES.get(key);
+        if (deltaRendering == null) {
+            deltaRendering = analyze(template);
+            ANALYSES.put(key, deltaRendering);
+        }
+        return deltaRendering;
+    }
+
+    private static String sha256(byte[] content) {
+        try {
+            StringBuilder hex = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("SHA-256").digest(content)) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static DeltaRendering analyze(byte[] template) throws IOException, XDocReportException {
+        Map<String, byte[]> entries = readEntries(template);
+        // Fields are only turned into Velocity references by the preprocessing, so it is what must be analyzed
+        IXDocReport report = XDocReportRegistry.getRegistry().loadReport(new ByteArrayInputStream(template),
+                TemplateEngineKind.Velocity);
+        report.preprocess();
+        XDocArchive preprocessedArchive = report.getPreprocessedDocumentArchive();
+
+        Map<String, Set<String>> dependencies = new HashMap<>();
+        Set<String> loopVariables = new HashSet<>();
+        boolean reliable = true;
+        for (String entryName : preprocessedArchive.getEntryNames()) {
+            if (entryName.endsWith(".xml") || entryName.endsWith(".rels")) {
+                String content;
+                try (InputStream is = preprocessedArchive.getEntryInputStream(entryName)) {
+                    content = IOUtils.toString(is, StandardCharsets.UTF_8);
+                }
+                reliable &= !STRUCTURAL_DIRECTIVE.matcher(content).find() && !CUT_REFERENCE.matcher(content).find();
+                Set<String> keys = findAll(REFERENCE, content);
+                loopVariables.addAll(findAll(LOOP_VARIABLE, content));
+                if (!keys.isEmpty()) {
+                    dependencies.put(entryName, keys);
+                }
+            }
+        }
+        return new DeltaRendering(entries, dependencies, loopVariables, reliable);
+    }
+
+    private static Set<String> findAll(Pattern pattern, String content) {
+        Set<String> found = new HashSet<>();
+        Matcher matcher = pattern.matcher(content);
+        while (matcher.find()) {
+            found.add(matcher.group(1));
+        }
+        return found;
+    }
+
+    /**
+     * @return the part of a replacement key that is put in the templating context, e.g. `project` for `project.name`
+     */
+    static String rootKey(String key) {
+        int separator = key.indexOf('.');
+        return separator < 0 ? key : key.substring(0, separator);
+    }
+
+    Set<String> getDependencies(String entryName) {
+        return dependencies.getOrDefault(entryName, Collections.emptySet());
+    }
+
+    /**
+     * A partial rendering is not possible when the template relies on state shared between entries, when one of its
+     * references cannot be analyzed reliably, or when the previous output does not have the same structure as the
+     * template. A reference that is neither one of the known keys nor a loop variable is considered unreliable: it is
+     * most likely a reference whose name has been split by the markup.
+     */
+    boolean canRender(byte[] previousOutput, Set<String> knownKeys) throws IOException {
+        if (!reliable) {
+            return false;
+        }
+        for (Set<String> keys : dependencies.values()) {
+            for (String key : keys) {
+                if (!knownKeys.contains(key) && !loopVariables.contains(key) && !VELOCITY_REFERENCES.contains(key)) {
+                    return false;
+                }
+            }
+        }
+        return readEntryNames(previousOutput).containsAll(dependencies.keySet());
+    }
+
+    Set<String> getAffectedEntries(Collection<String> changedRootKeys) {
+        Set<String> affectedEntries = new HashSet<>();
+        for (Map.Entry<String, Set<String>> entry : dependencies.entrySet()) {
+            if (!Collections.disjoint(entry.getValue(), changedRootKeys)) {
+                affectedEntries.add(entry.getKey());
+            }
+        }
+        return affectedEntries;
+    }
+
+    /**
+     * The required entries that are not affected are only there for XDocReport to recognize the document: the ones
+     * holding the content of the document are replaced by a stub, so that this content is not rendered again.
+     */
+    byte[] reducedTemplate(Set<String> affectedEntries, boolean isOdt) throws IOException {
+        List<String> requiredEntries = isOdt ? ODT_REQUIRED_ENTRIES : DOCX_REQUIRED_ENTRIES;
+        try (ByteArrayOutputStream out = new ByteArrayOutputStream();
+                ZipOutputStream zos = new ZipOutputStream(out)) {
+            for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                byte[] content = null;
+                if (affectedEntries.contains(entry.getKey())) {
+                    content = entry.getValue();
+                } else if (requiredEntries.contains(entry.getKey())) {
+                    content = stub(entry.getKey(), entry.getValue(), isOdt);
+                }
+                if (content != null) {
+                    zos.putNextEntry(new ZipEntry(entry.getKey()));
+                    zos.write(content);
+                    zos.closeEntry();
+                }
+            }
+            zos.finish();
+            return out.toByteArray();
+        }
+    }
+
+    private static byte[] stub(String entryName, byte[] content, boolean isOdt) {
+        if (isOdt && ODT_CONTENT.equals(entryName)) {
+            return emptyElement(content, "office:body", false);
+        }
+        if (isOdt && ODT_STYLES.equals(entryName)) {
+            // Headers and footers of an .odt document are defined in its master styles
+            return emptyElement(content, "office:master-styles", false);
+        }
+        if (!isOdt && DOCX_BODY.equals(entryName)) {
+            // The section properties ending the body reference the headers and footers, they are kept
+            return emptyElement(content, "w:body", true);
+        }
+        return content;
+    }
+
+    /**
+     * Remove the children of the first occurrence of the given element. The content is returned unchanged when the
+     * element cannot be found.
+     */
+    private static byte[] emptyElement(byte[] content, String element, boolean keepSectionProperties) {
+        String xml = new String(content, StandardCharsets.UTF_8);
+        Matcher startTag = Pattern.compile("<" + element + "(\\s[^>]*)?>").matcher(xml);
+        String endTag = "</" + element + ">";
+        if (!startTag.find()) {
+            return content;
+        }
+        int end = xml.indexOf(endTag, startTag.end());
+        if (end < 0) {
+            return content;
+        }
+        String kept = "";
+        if (keepSectionProperties) {
+            int sectionProperties = xml.lastIndexOf("<w:sectPr", end);
+            if (sectionProperties >= startTag.end()) {
+                String candidate = xml.substring(sectionProperties, end).trim();
+                // Only the section properties of the body itself, not the ones of a paragraph
+                if (candidate.endsWith("</w:sectPr>") && !candidate.contains("</w:p>")) {
+                    kept = candidate;
+                }
+            }
+        }
+        return (xml.substring(0, startTag.end()) + kept + xml.substring(end)).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Copy the previous output, replacing the affected entries by the ones of the partial rendering.
+     */
+    static byte[] splice(byte[] previousOutput, byte[] partialOutput, Set<String> affectedEntries)
+            throws IOException {
+        Map<String, byte[]> renderedEntries = readEntries(partialOutput);
+        try (ByteArrayOutputStream out = new ByteArrayOutputStream();
+                ZipOutputStream zos = new ZipOutputStream(out);
+                ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(previousOutput))) {
+            ZipEntry entry;
+            while ((entry = zis.getNextEntry()) != null) {
+                zos.putNextEntry(new ZipEntry(entry.getName()));
+                if (affectedEntries.contains(entry.getName())) {
+                    byte[] renderedEntry = renderedEntries.get(entry.getName());
+                    if (renderedEntry == null) {
+                        throw new IOException(
+                                String.format("The entry `%s` is missing from the partial rendering.", entry.getName()));
+                    }
+                    zos.write(renderedEntry);
+                } else {
+                    IOUtils.copy(zis, zos);
+                }
+                zos.closeEntry();
+            }
+            zos.finish();
+            return out.toByteArray();
+        }
+    }
+
+    private static Map<String, byte[]> readEntries(byte[] archive) throws IOException {
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        try (ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(archive))) {
+            ZipEntry entry;
+            while ((entry = zis.getNextEntry()) != null) {
+                if (!entry.isDirectory()) {
+                    entries.put(entry.getName(), IOUtils.toByteArray(zis));
+                }
+            }
+        }
+        return entries;
+    }
+
+    private static Set<String> readEntryNames(byte[] archive) throws IOException {
+        Set<String> names = new HashSet<>();
+        try (ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(archive))) {
+            ZipEntry entry;
+            while ((entry = zis.getNextEntry()) != null) {
+                names.add(entry.getName());
+            }
+        }
+        return names;
+    }
+}
@@ -19,13 +19,12 @@ package org.bonitasoft.connectors.document.templating;
 import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.Buffer;
 import java.nio.CharBuffer;
 import java.nio.file.Files;
@@ -33,17 +32,25 @@ import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Collectors;
 import java.util.zip.ZipInputStream;
 
-import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.output.DeferredFileOutputStream;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.apache.commons.text.translate.LookupTranslator;
+import org.apache.velocity.context.Context;
 import org.apache.velocity.tools.generic.SortTool;
+import org.bonitasoft.connectors.document.templating.RenderBudget.RenderBudgetExceededException;
 import org.bonitasoft.engine.api.ProcessAPI;
 import org.bonitasoft.engine.bpm.document.Document;
 import org.bonitasoft.engine.bpm.document.DocumentNotFoundException;
@@ -67,10 +74,18 @@ public class DocumentTemplating extends AbstractConnector {
     private static final String TEMP_DIR = "connectorDocumentTemplatingTempDirectory";
     private static final String ODT_EXT = ".odt";
     private static final String DOCX_EXT = ".docx";
+    private static final String SORTER_KEY = "sorter";
+    private static final int DEFAULT_LARGE_DOCUMENT_THRESHOLD = 10 * 1024 * 1024;
 
     public static final String INPUT_DOCUMENT_INPUT = "documentInput";
     public static final String INPUT_REPLACEMENTS = "replacements";
     public static final String INPUT_RESULTING_DOC_FILENAME = "outputFileName";
+    public static final String INPUT_RENDER_TIMEOUT = "renderTimeout";
+    public static final String INPUT_MAX_OUTPUT_SIZE = "maxOutputSize";
+    public static final String INPUT_MAX_RENDERED_CHARACTERS = "maxRenderedCharacters";
+    public static final String INPUT_LARGE_DOCUMENT_THRESHOLD = "largeDocumentThreshold";
+    public static final String INPUT_PREVIOUS_DOCUMENT = "previousDocument";
+    public static final String INPUT_CHANGED_KEYS = "changedKeys";
     public static final String OUTPUT_DOCUMENT = "document";
 
     private Logger logger = Logger.getLogger(DocumentTemplating.class.getName());
@@ -121,7 +136,9 @@ public class DocumentTemplating extends AbstractConnector {
             byte[] content = getAPIAccessor().getProcessAPI().getDocumentContent(document.getContentStorageId());
             List<List<Object>> replacements = (List<List<Object>>) getInputParameter(INPUT_REPLACEMENTS);
 
-            byte[] finalDocument = applyReplacements(content, replacements, isOdt);
+            byte[] finalDocument = getInputParameter(INPUT_PREVIOUS_DOCUMENT) != null
+                    ? applyChangedReplacements(content, replacements, isOdt)
+                    : applyReplacements(content, replacements, isOdt);
             setOutputParameter(OUTPUT_DOCUMENT, createDocumentValue(document, outputFilename, finalDocument));
         } catch (final DocumentNotFoundException e) {
             throw new ConnectorException(e);
@@ -130,43 +147,178 @@ public class DocumentTemplating extends AbstractConnector {
 
     protected byte[] applyReplacements(byte[] content, List<List<Object>> inputParameter, boolean isOdt)
             throws ConnectorException {
+        Replacements replacements = Replacements.of(inputParameter);
+        logProblems(replacements);
+        return applyReplacements(content, replacements, isOdt);
+    }
+
+    private void logProblems(Replacements replacements) {
+        if (logger.isLoggable(Level.WARNING)) {
+            for (String problem : replacements.getProblems()) {
+                logger.warning(String.format("Invalid replacements for the document `%s`: %s",
+                        getInputParameter(INPUT_DOCUMENT_INPUT), problem));
+            }
+        }
+    }
+
+    protected byte[] applyReplacements(byte[] content, Replacements replacements, boolean isOdt)
+            throws ConnectorException {
+        RenderBudget budget = createRenderBudget();
+        File resFile = null;
         try (ByteArrayInputStream is = new ByteArrayInputStream(content)) {
             IXDocReport report = XDocReportRegistry.getRegistry().loadReport(is, TemplateEngineKind.Velocity);
             IContext context = report.createContext();
-            context.put("sorter", new SortTool());
-            for (List<Object> objects : inputParameter) {
-                if (objects != null && objects.size() > 1) {
-                    context.put(String.valueOf(objects.get(0)), objects.get(1));
-                }
+            context.put(SORTER_KEY, new SortTool());
+            replacements.asContext().forEach(context::put);
+            if (context instanceof Context) {
+                budget.attachTo((Context) context);
             }
 
-            try (ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream()) {
-                report.process(context, byteArrayOutputStream);
-                File resFile = sanitizeOutput(byteArrayOutputStream, isOdt);
-                try (FileInputStream fis = new FileInputStream(resFile)) {
-                    return IOUtils.toByteArray(fis);
+            // The rendered document is kept in memory until it reaches the threshold, then it is moved to a temp file
+            DeferredFileOutputStream renderedDocument = DeferredFileOutputStream.builder()
+                    .setThreshold(getLargeDocumentThreshold())
+                    .setPrefix(TEMP_DOC)
+                    .setSuffix(isOdt ? ODT_EXT : DOCX_EXT)
+                    .get();
+            try {
+                try (OutputStream out = budget.track(renderedDocument)) {
+                    report.process(context, out);
                 }
-
+                resFile = sanitizeOutput(renderedDocument, isOdt, budget);
+                return Files.readAllBytes(resFile.toPath());
+            } finally {
+                FileUtils.deleteQuietly(renderedDocument.getFile());
             }
         } catch (final IOException | XDocReportException e) {
+            throwIfBudgetExceeded(e);
             throw new ConnectorException(e);
+        } catch (final RuntimeException e) {
+            // Raised from the Velocity merge by the budget event handler
+            throwIfBudgetExceeded(e);
+            throw e;
+        } finally {
+            FileUtils.deleteQuietly(resFile);
         }
     }
 
-    private File sanitizeOutput(ByteArrayOutputStream byteArrayOutputStream, boolean isOdt) throws IOException {
-        try (InputStream is = new ByteArrayInputStream(byteArrayOutputStream.toByteArray());
-                ZipInputStream zis = new ZipInputStream(new BufferedInputStream(is));) {
-            Path targetDir = ZipUtil.unzip(TEMP_DIR, zis);
+    private void throwIfBudgetExceeded(Exception e) throws ConnectorException {
+        RenderBudgetExceededException budgetExceeded = ExceptionUtils.throwableOfType(e,
+                RenderBudgetExceededException.class);
+        if (budgetExceeded != null) {
+            throw new ConnectorException(String.format("The generation of the document `%s` has been aborted: %s",
+                    getInputParameter(INPUT_DOCUMENT_INPUT), budgetExceeded.getMessage()), budgetExceeded);
+        }
+    }
+
+    /**
+     * Re-render only the parts of the previously generated document that depend on the changed keys. Fall back to a
+     * full rendering when there is no previous document or when the template does not allow a partial rendering.
+     */
+    protected byte[] applyChangedReplacements(byte[] content, List<List<Object>> inputParameter, boolean isOdt)
+            throws ConnectorException {
+        Replacements replacements = Replacements.of(inputParameter);
+        logProblems(replacements);
+        List<?> changedKeys = (List<?>) getInputParameter(INPUT_CHANGED_KEYS);
+        byte[] previousContent = retrievePreviousContent();
+        if (changedKeys == null || changedKeys.isEmpty() || previousContent == null) {
+            return applyReplacements(content, replacements, isOdt);
+        }
+        try {
+            DeltaRendering deltaRendering = DeltaRendering.of(content);
+            Set<String> knownKeys = new HashSet<>(replacements.asContext().keySet());
+            knownKeys.add(SORTER_KEY);
+            if (!deltaRendering.canRender(previousContent, knownKeys)) {
+                if (logger.isLoggable(Level.FINE)) {
+                    logger.fine(String.format(
+                            "The template `%s` does not allow a partial rendering, it will be fully rendered.",
+                            getInputParameter(INPUT_DOCUMENT_INPUT)));
+                }
+                return applyReplacements(content, replacements, isOdt);
+            }
+            Set<String> changedRootKeys = changedKeys.stream()
+                    .map(String::valueOf)
+                    .map(DeltaRendering::rootKey)
+                    .collect(Collectors.toSet());
+            Set<String> affectedEntries = deltaRendering.getAffectedEntries(changedRootKeys);
+            if (affectedEntries.isEmpty()) {
+                return previousContent;
+            }
+            byte[] partialDocument = applyReplacements(deltaRendering.reducedTemplate(affectedEntries, isOdt),
+                    replacements, isOdt);
+            return DeltaRendering.splice(previousContent, partialDocument, affectedEntries);
+        } catch (IOException | XDocReportException e) {
+            throw new ConnectorException(e);
+        }
+    }
+
+    private byte[] retrievePreviousContent() throws ConnectorException {
+        ProcessAPI processAPI = getAPIAccessor().getProcessAPI();
+        try {
+            Document previousDocument = processAPI.getLastDocument(getExecutionContext().getProcessInstanceId(),
+                    (String) getInputParameter(INPUT_PREVIOUS_DOCUMENT));
+            if (!previousDocument.hasContent()) {
+                return null;
+            }
+            return processAPI.getDocumentContent(previousDocument.getContentStorageId());
+        } catch (DocumentNotFoundException e) {
+            // First revision of the document
+            return null;
+        }
+    }
+
+    private RenderBudget createRenderBudget() {
+        Number timeout = (Number) getInputParameter(INPUT_RENDER_TIMEOUT);
+        Number maxOutputSize = (Number) getInputParameter(INPUT_MAX_OUTPUT_SIZE);
+        Number maxRenderedCharacters = (Number) getInputParameter(INPUT_MAX_RENDERED_CHARACTERS);
+        return new RenderBudget(timeout != null ? TimeUnit.SECONDS.toMillis(timeout.longValue()) : 0,
+                maxOutputSize != null ? maxOutputSize.longValue() : 0,
+                maxRenderedCharacters != null ? maxRenderedCharacters.longValue() : 0);
+    }
+
+    private int getLargeDocumentThreshold() {
+        Number threshold = (Number) getInputParameter(INPUT_LARGE_DOCUMENT_THRESHOLD);
+        return threshold != null ? threshold.intValue() : DEFAULT_LARGE_DOCUMENT_THRESHOLD;
+    }
+
+    private File sanitizeOutput(DeferredFileOutputStream renderedDocument, boolean isOdt, RenderBudget budget)
+            throws IOException {
+        Path targetDir = null;
+        Path tempResFile = null;
+        try {
+            targetDir = unzip(renderedDocument);
+            budget.checkTime();
             Path documentPath = retrieveDocumentPath(isOdt, targetDir);
             if (isCorrupted(documentPath) && logger.isLoggable(Level.WARNING)) {
                 logger.warning(String.format(
                         "Invalid XML characters have been detected in the document `%s`, they will be removed.",
                         getInputParameter(INPUT_DOCUMENT_INPUT)));
                 sanitizeFile(documentPath);
+                budget.checkTime();
             }
-            Path tempResFile = Files.createTempFile(TEMP_DOC, isOdt ? ODT_EXT : DOCX_EXT);
+            tempResFile = Files.createTempFile(TEMP_DOC, isOdt ? ODT_EXT : DOCX_EXT);
             ZipUtil.zip(targetDir, tempResFile);
+            budget.checkSize(Files.size(tempResFile));
+            budget.checkTime();
             return tempResFile.toFile();
+        } catch (IOException e) {
+            if (tempResFile != null) {
+                Files.deleteIfExists(tempResFile);
+            }
+            throw e;
+        } finally {
+            if (targetDir != null) {
+                FileUtils.deleteQuietly(targetDir.toFile());
+            }
+        }
+    }
+
+    private Path unzip(DeferredFileOutputStream renderedDocument) throws IOException {
+        if (!renderedDocument.isInMemory()) {
+            return ZipUtil.unzip(TEMP_DIR, renderedDocument.getFile().toPath());
+        }
+        try (InputStream is = new ByteArrayInputStream(renderedDocument.getData());
+                ZipInputStream zis = new ZipInputStream(new BufferedInputStream(is));) {
+            return ZipUtil.unzip(TEMP_DIR, zis);
         }
     }
 
@@ -207,6 +359,8 @@ public class DocumentTemplating extends AbstractConnector {
                 lookupTranslator.translate(buffer.toString(), writer);
                 buffer.clear();
             }
+        } finally {
+            Files.deleteIfExists(tempFile);
         }
     }
 
@@ -226,6 +380,18 @@ public class DocumentTemplating extends AbstractConnector {
         } catch (DocumentNotFoundException e) {
             throw new ConnectorValidationException(e.getMessage());
         }
+        validatePositiveNumber(INPUT_RENDER_TIMEOUT);
+        validatePositiveNumber(INPUT_MAX_OUTPUT_SIZE);
+        validatePositiveNumber(INPUT_MAX_RENDERED_CHARACTERS);
+        validatePositiveNumber(INPUT_LARGE_DOCUMENT_THRESHOLD);
+    }
+
+    private void validatePositiveNumber(String inputName) throws ConnectorValidationException {
+        Object value = getInputParameter(inputName);
+        if (value != null && (!(value instanceof Number) || ((Number) value).longValue() <= 0)) {
+            throw new ConnectorValidationException(
+                    String.format("The input `%s` must be a positive number, got `%s`.", inputName, value));
+        }
     }
 
     private Document retrieveDocument() throws DocumentNotFoundException {
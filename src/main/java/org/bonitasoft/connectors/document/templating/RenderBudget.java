@@ -0,0 +1,158 @@
+/**
+ * Copyright (C) 2020 BonitaSoft S.A.
+ * BonitaSoft, 32 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.bonitasoft.connectors.document.templating;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.velocity.app.event.EventCartridge;
+import org.apache.velocity.app.event.ReferenceInsertionEventHandler;
+import org.apache.velocity.context.Context;
+
+/**
+ * Time, output size and rendered characters limits of a single templating execution.
+ * The clock starts when the budget is created. A limit lower or equal to 0 means no limit.
+ * <p>
+ * XDocReport renders the whole document in memory before writing it, so the time and the number of characters inserted
+ * by the references are checked during the Velocity merge (see {@link #attachTo(Context)}). The output size is the
+ * number of bytes of the written, zipped, document.
+ */
+class RenderBudget {
+
+    private final long timeoutMillis;
+    private final long maxOutputSize;
+    private final long maxRenderedCharacters;
+    private final long startTime;
+
+    RenderBudget(long timeoutMillis, long maxOutputSize, long maxRenderedCharacters) {
+        this.timeoutMillis = timeoutMillis;
+        this.maxOutputSize = maxOutputSize;
+        this.maxRenderedCharacters = maxRenderedCharacters;
+        this.startTime = System.nanoTime();
+    }
+
+    static RenderBudget unlimited() {
+        return new RenderBudget(0, 0, 0);
+    }
+
+    long elapsedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+    }
+
+    void checkTime() throws RenderBudgetExceededException {
+        if (timeoutMillis > 0) {
+            long elapsed = elapsedMillis();
+            if (elapsed > timeoutMillis) {
+                throw new RenderBudgetExceededException(String.format(
+                        "the rendering time limit of %s ms has been exceeded (%s ms elapsed).", timeoutMillis, elapsed));
+            }
+        }
+    }
+
+    void checkSize(long size) throws RenderBudgetExceededException {
+        if (maxOutputSize > 0 && size > maxOutputSize) {
+            throw new RenderBudgetExceededException(String.format(
+                    "the output size limit of %s bytes has been exceeded.", maxOutputSize));
+        }
+    }
+
+    void checkRenderedCharacters(long renderedCharacters) throws RenderBudgetExceededException {
+        if (maxRenderedCharacters > 0 && renderedCharacters > maxRenderedCharacters) {
+            throw new RenderBudgetExceededException(String.format(
+                    "the limit of %s rendered characters has been exceeded.", maxRenderedCharacters));
+        }
+    }
+
+    /**
+     * Check the time and rendered characters limits each time Velocity inserts the value of a reference in the
+     * rendered document.
+     */
+    void attachTo(Context context) {
+        EventCartridge eventCartridge = new EventCartridge();
+        eventCartridge.addEventHandler(new BudgetInsertionHandler());
+        eventCartridge.attachToContext(context);
+    }
+
+    /**
+     * Wrap the given stream so that the time and output size limits are checked each time something is written to it.
+     */
+    OutputStream track(OutputStream out) {
+        return new FilterOutputStream(out) {
+
+            private long written;
+
+            @Override
+            public void write(int b) throws IOException {
+                checkBeforeWrite(1);
+                out.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                checkBeforeWrite(len);
+                out.write(b, off, len);
+            }
+
+            private void checkBeforeWrite(int len) throws RenderBudgetExceededException {
+                written += len;
+                checkSize(written);
+                checkTime();
+            }
+        };
+    }
+
+    /**
+     * Implements the signatures of both Velocity 1.x and 2.x, so that it works with the Velocity version XDocReport
+     * brings.
+     */
+    private class BudgetInsertionHandler implements ReferenceInsertionEventHandler {
+
+        private long inserted;
+
+        public Object referenceInsert(String reference, Object value) {
+            try {
+                // Values are only converted to text when needed, as it can be costly and Velocity does it again
+                if (maxRenderedCharacters > 0 && value != null) {
+                    inserted += String.valueOf(value).length();
+                    checkRenderedCharacters(inserted);
+                }
+                checkTime();
+            } catch (RenderBudgetExceededException e) {
+                throw new UncheckedIOException(e);
+            }
+            return value;
+        }
+
+        public Object referenceInsert(Context context, String reference, Object value) {
+            return referenceInsert(reference, value);
+        }
+    }
+
+    /**
+     * Raised when a templating execution goes over its {@link RenderBudget}.
+     * It is an {@link IOException} so that it can go through the streams used by the rendering.
+     */
+    static class RenderBudgetExceededException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        RenderBudgetExceededException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,277 @@
+/**
+ * Copyright (C) 2020 BonitaSoft S.A.
+ * BonitaSoft, 32 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.bonitasoft.connectors.document.templating;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.OffsetDateTime;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Immutable, key indexed form of the `replacements` input (a list of key/value rows).
+ * <p>
+ * Dotted keys are nested in the templating context: `customer.name` is available as `$customer.name`. Rows that cannot
+ * be used, duplicated keys and conflicting keys are listed in {@link #getProblems()}.
+ */
+public final class Replacements {
+
+    private static final String KEY_SEPARATOR = ".";
+    private static final Set<Class<?>> FINGERPRINTABLE_TYPES = new HashSet<>(Arrays.asList(Integer.class,
+            Long.class, Short.class, Byte.class, Double.class, Float.class, BigInteger.class, BigDecimal.class,
+            LocalDate.class, LocalDateTime.class, LocalTime.class, OffsetDateTime.class, ZonedDateTime.class,
+            Instant.class));
+
+    private final Map<String, Object> values;
+    private final Map<String, Object> context;
+    private final List<String> problems;
+    private Optional<String> fingerprint;
+
+    private Replacements(Map<String, Object> values, Map<String, Object> context, List<String> problems) {
+        this.values = values;
+        this.context = context;
+        this.problems = problems;
+    }
+
+    public static Replacements of(List<List<Object>> rows) {
+        Map<String, Object> values = new LinkedHashMap<>();
+        List<String> problems = new ArrayList<>();
+        if (rows != null) {
+            int rowNumber = 0;
+            for (List<Object> row : rows) {
+                rowNumber++;
+                if (row == null || row.size() < 2) {
+                    problems.add(String.format("Row %s is ignored: it must contain a key and a value.", rowNumber));
+                    continue;
+                }
+                String key = row.get(0) != null ? String.valueOf(row.get(0)) : null;
+                if (!isValidKey(key)) {
+                    problems.add(String.format("Row %s is ignored: `%s` is not a valid key.", rowNumber, key));
+                    continue;
+                }
+                if (values.containsKey(key)) {
+                    problems.add(String.format("Row %s: the key `%s` is defined several times, the last value is used.",
+                            rowNumber, key));
+                }
+                values.put(key, row.get(1));
+            }
+        }
+        Map<String, Object> context = buildContext(values, problems);
+        return new Replacements(Collections.unmodifiableMap(values), context, Collections.unmodifiableList(problems));
+    }
+
+    private static boolean isValidKey(String key) {
+        return StringUtils.isNotBlank(key) && !key.startsWith(KEY_SEPARATOR) && !key.endsWith(KEY_SEPARATOR)
+                && !key.contains(KEY_SEPARATOR + KEY_SEPARATOR);
+    }
+
+    private static Map<String, Object> buildContext(Map<String, Object> values, List<String> problems) {
+        KeyNode root = new KeyNode();
+        // Plain keys first, so that they take precedence over the dotted keys they conflict with
+        values.forEach((key, value) -> {
+            if (!key.contains(KEY_SEPARATOR)) {
+                root.put(key, value);
+            }
+        });
+        values.forEach((key, value) -> {
+            if (key.contains(KEY_SEPARATOR) && !putNested(root, StringUtils.split(key, KEY_SEPARATOR), value)) {
+                problems.add(String.format("The key `%s` is ignored: it conflicts with another key.", key));
+            }
+        });
+        return freeze(root);
+    }
+
+    private static boolean putNested(KeyNode root, String[] segments, Object value) {
+        KeyNode node = root;
+        for (int i = 0; i < segments.length - 1; i++) {
+            if (!node.containsKey(segments[i])) {
+                node.put(segments[i], new KeyNode());
+            }
+            Object child = node.get(segments[i]);
+            if (!(child instanceof KeyNode)) {
+                return false;
+            }
+            node = (KeyNode) child;
+        }
+        String lastSegment = segments[segments.length - 1];
+        if (node.containsKey(lastSegment)) {
+            return false;
+        }
+        node.put(lastSegment, value);
+        return true;
+    }
+
+    private static Map<String, Object> freeze(KeyNode node) {
+        Map<String, Object> frozen = new LinkedHashMap<>();
+        node.forEach((key, value) -> frozen.put(key, value instanceof KeyNode ? freeze((KeyNode) value) : value));
+        return Collections.unmodifiableMap(frozen);
+    }
+
+    /**
+     * @return the value of the given key, as written in the input
+     */
+    public Object get(String key) {
+        return values.get(key);
+    }
+
+    public Set<String> keys() {
+        return values.keySet();
+    }
+
+    /**
+     * @return the entries to put in the templating context, dotted keys being nested in maps
+     */
+    public Map<String, Object> asContext() {
+        return context;
+    }
+
+    public List<String> getProblems() {
+        return problems;
+    }
+
+    /**
+     * A hash of the keys and values, stable across executions and JVMs, to be used as a cache key.
+     * <p>
+     * Only values with a well-defined representation are supported: null, {@link String}, {@link Boolean}, the
+     * {@link Number} and date types of the JDK, and {@link Map} or {@link List} of those. The type of the values is part
+     * of the hash, so `1` and `1L` or `null` and `"null"` have different fingerprints.
+     *
+     * @return the fingerprint, or an empty optional when one of the values is not supported
+     */
+    public Optional<String> fingerprint() {
+        if (fingerprint == null) {
+            fingerprint = computeFingerprint();
+        }
+        return fingerprint;
+    }
+
+    private Optional<String> computeFingerprint() {
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        for (Map.Entry<String, Object> entry : new TreeMap<>(values).entrySet()) {
+            encodeToken(encoded, 'K', entry.getKey());
+            if (!encodeValue(encoded, entry.getValue())) {
+                return Optional.empty();
+            }
+        }
+        try {
+            StringBuilder hex = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("SHA-256").digest(encoded.toByteArray())) {
+                hex.append(String.format("%02x", b));
+            }
+            return Optional.of(hex.toString());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static boolean encodeValue(ByteArrayOutputStream out, Object value) {
+        if (value == null) {
+            out.write('N');
+        } else if (value instanceof String) {
+            encodeToken(out, 'S', (String) value);
+        } else if (value instanceof Boolean) {
+            encodeToken(out, 'B', value.toString());
+        } else if (FINGERPRINTABLE_TYPES.contains(value.getClass())) {
+            // Numbers and dates of the JDK, whose string form is well-defined
+            encodeToken(out, 'T', value.getClass().getName());
+            encodeToken(out, 'V', value.toString());
+        } else if (value instanceof Date) {
+            encodeToken(out, 'D', value.getClass().getName());
+            encodeToken(out, 'V', String.valueOf(((Date) value).getTime()));
+        } else if (value instanceof List) {
+            List<?> list = (List<?>) value;
+            encodeToken(out, 'L', String.valueOf(list.size()));
+            for (Object element : list) {
+                if (!encodeValue(out, element)) {
+                    return false;
+                }
+            }
+        } else if (value instanceof Map) {
+            return encodeMap(out, (Map<?, ?>) value);
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    private static boolean encodeMap(ByteArrayOutputStream out, Map<?, ?> map) {
+        // Entries are sorted on their encoded key, so that the fingerprint does not depend on the map ordering
+        TreeMap<String, byte[]> entries = new TreeMap<>();
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            ByteArrayOutputStream encodedKey = new ByteArrayOutputStream();
+            ByteArrayOutputStream encodedValue = new ByteArrayOutputStream();
+            if (!encodeValue(encodedKey, entry.getKey()) || !encodeValue(encodedValue, entry.getValue())) {
+                return false;
+            }
+            byte[] encodedEntry = new byte[encodedKey.size() + encodedValue.size()];
+            System.arraycopy(encodedKey.toByteArray(), 0, encodedEntry, 0, encodedKey.size());
+            System.arraycopy(encodedValue.toByteArray(), 0, encodedEntry, encodedKey.size(), encodedValue.size());
+            entries.put(new String(encodedKey.toByteArray(), StandardCharsets.ISO_8859_1), encodedEntry);
+        }
+        encodeToken(out, 'M', String.valueOf(entries.size()));
+        entries.values().forEach(out::writeBytes);
+        return true;
+    }
+
+    /**
+     * Write a tag, the length of the text, then the text, so that two different sequences of tokens never have the
+     * same encoding.
+     */
+    private static void encodeToken(ByteArrayOutputStream out, char tag, String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        out.write(tag);
+        out.writeBytes(String.valueOf(bytes.length).getBytes(StandardCharsets.US_ASCII));
+        out.write(':');
+        out.writeBytes(bytes);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof Replacements && values.equals(((Replacements) o).values);
+    }
+
+    @Override
+    public int hashCode() {
+        return values.hashCode();
+    }
+
+    /**
+     * Intermediate node created for the segments of dotted keys, to tell them apart from map values given as input.
+     */
+    private static class KeyNode extends LinkedHashMap<String, Object> {
+
+        private static final long serialVersionUID = 1L;
+    }
+}
@@ -0,0 +1,199 @@
+/**
+ * Copyright (C) 2020 BonitaSoft S.A.
+ * BonitaSoft, 32 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.bonitasoft.connectors.document.templating;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.bonitasoft.engine.api.ProcessAPI;
+import org.bonitasoft.engine.bpm.document.Document;
+import org.bonitasoft.engine.bpm.document.DocumentNotFoundException;
+import org.bonitasoft.engine.connector.ConnectorException;
+
+import fr.opensagres.xdocreport.document.registry.XDocReportRegistry;
+
+/**
+ * Pay the cost of the first templating (registry discovery, Velocity initialization, class loading) ahead of time.
+ * <p>
+ * It must be called from the classloader of the process using the connector, e.g. from a Groovy script of that process,
+ * otherwise the classes loaded here are not the ones used by the connector.
+ */
+public class TemplatingWarmUp {
+
+    private static final Logger LOGGER = Logger.getLogger(TemplatingWarmUp.class.getName());
+    private static final String SYNTHETIC_TEMPLATE = "synthetic-template.docx";
+
+    private TemplatingWarmUp() {
+    }
+
+    /**
+     * Warm up using the last version of the given documents of a process instance as templates.
+     * A document that cannot be found is logged, counted as failed, and does not stop the warm-up.
+     */
+    public static WarmUpResult warmUp(ProcessAPI processAPI, long processInstanceId, Collection<String> documentNames) {
+        long start = System.nanoTime();
+        // Several documents may have the same file name, so they are identified by their document name
+        List<Template> templates = new ArrayList<>();
+        int missingDocuments = 0;
+        for (String documentName : documentNames) {
+            try {
+                Document document = processAPI.getLastDocument(processInstanceId, documentName);
+                templates.add(new Template(documentName, document.getContentFileName(),
+                        processAPI.getDocumentContent(document.getContentStorageId())));
+            } catch (DocumentNotFoundException e) {
+                LOGGER.log(Level.WARNING, String.format("Unable to warm up the template `%s`.", documentName), e);
+                missingDocuments++;
+            }
+        }
+        return warmUp(templates, missingDocuments, start);
+    }
+
+    /**
+     * Render a synthetic template, then each of the given templates (file name to content), with no replacements.
+     * A template that fails to render is logged and does not stop the warm-up.
+     */
+    public static WarmUpResult warmUp(Map<String, byte[]> templates) {
+        long start = System.nanoTime();
+        List<Template> toRender = new ArrayList<>();
+        templates.forEach((fileName, content) -> toRender.add(new Template(fileName, fileName, content)));
+        return warmUp(toRender, 0, start);
+    }
+
+    private static synchronized WarmUpResult warmUp(List<Template> templates, int failures, long start) {
+        XDocReportRegistry.getRegistry();
+        List<Template> toRender = new ArrayList<>();
+        toRender.add(new Template(SYNTHETIC_TEMPLATE, SYNTHETIC_TEMPLATE, syntheticTemplate()));
+        toRender.addAll(templates);
+
+        int rendered = 0;
+        for (Template template : toRender) {
+            if (render(template)) {
+                rendered++;
+            } else {
+                failures++;
+            }
+        }
+        WarmUpResult result = new WarmUpResult(rendered, failures, Duration.ofNanos(System.nanoTime() - start));
+        if (LOGGER.isLoggable(Level.INFO)) {
+            LOGGER.info(String.format("Document templating warm-up: %s templates rendered (%s failed) in %s ms.",
+                    result.getRenderedTemplates(), result.getFailedTemplates(), result.getDuration().toMillis()));
+        }
+        return result;
+    }
+
+    private static boolean render(Template template) {
+        DocumentTemplating documentTemplating = new DocumentTemplating();
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put(DocumentTemplating.INPUT_DOCUMENT_INPUT, template.name);
+        documentTemplating.setInputParameters(parameters);
+        try {
+            documentTemplating.applyReplacements(template.content, Collections.emptyList(),
+                    template.fileName.endsWith(".odt"));
+            return true;
+        } catch (ConnectorException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, String.format("Unable to warm up the template `%s`.", template.name), e);
+            return false;
+        }
+    }
+
+    /**
+     * @return a minimal .docx document containing a single Velocity reference
+     */
+    static byte[] syntheticTemplate() {
+        try (ByteArrayOutputStream out = new ByteArrayOutputStream();
+                ZipOutputStream zos = new ZipOutputStream(out)) {
+            putEntry(zos, "[Content_Types].xml",
+                    "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>"
+                            + "<Types xmlns=\"http://schemas.openxmlformats.org/package/2006/content-types\">"
+                            + "<Default Extension=\"rels\" ContentType=\"application/vnd.openxmlformats-package.relationships+xml\"/>"
+                            + "<Default Extension=\"xml\" ContentType=\"application/xml\"/>"
+                            + "<Override PartName=\"/word/document.xml\" ContentType=\"application/vnd.openxmlformats-officedocument.wordprocessingml.document.main+xml\"/>"
+                            + "</Types>");
+            putEntry(zos, "_rels/.rels",
+                    "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>"
+                            + "<Relationships xmlns=\"http://schemas.openxmlformats.org/package/2006/relationships\">"
+                            + "<Relationship Id=\"rId1\" Type=\"http://schemas.openxmlformats.org/officeDocument/2006/relationships/officeDocument\" Target=\"word/document.xml\"/>"
+                            + "</Relationships>");
+            putEntry(zos, "word/document.xml",
+                    "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>"
+                            + "<w:document xmlns:w=\"http://schemas.openxmlformats.org/wordprocessingml/2006/main\">"
+                            + "<w:body><w:p><w:r><w:t>${warmUp}</w:t></w:r></w:p></w:body>"
+                            + "</w:document>");
+            zos.finish();
+            return out.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to create the warm-up template.", e);
+        }
+    }
+
+    private static void putEntry(ZipOutputStream zos, String name, String content) throws IOException {
+        zos.putNextEntry(new ZipEntry(name));
+        zos.write(content.getBytes(StandardCharsets.UTF_8));
+        zos.closeEntry();
+    }
+
+    private static class Template {
+
+        private final String name;
+        private final String fileName;
+        private final byte[] content;
+
+        Template(String name, String fileName, byte[] content) {
+            this.name = name;
+            this.fileName = fileName;
+            this.content = content;
+        }
+    }
+
+    /**
+     * Outcome of a warm-up, its duration is the startup cost saved on the first connector execution.
+     */
+    public static class WarmUpResult {
+
+        private final int renderedTemplates;
+        private final int failedTemplates;
+        private final Duration duration;
+
+        WarmUpResult(int renderedTemplates, int failedTemplates, Duration duration) {
+            this.renderedTemplates = renderedTemplates;
+            this.failedTemplates = failedTemplates;
+            this.duration = duration;
+        }
+
+        public int getRenderedTemplates() {
+            return renderedTemplates;
+        }
+
+        public int getFailedTemplates() {
+            return failedTemplates;
+        }
+
+        public Duration getDuration() {
+            return duration;
+        }
+    }
+}
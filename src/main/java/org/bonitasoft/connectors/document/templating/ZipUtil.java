@@ -18,19 +18,24 @@ import static java.nio.file.FileVisitResult.CONTINUE;
 
 import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Enumeration;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
 
+import org.apache.commons.io.FileUtils;
+
 public class ZipUtil extends SimpleFileVisitor<Path> implements java.lang.AutoCloseable {
 
     public static final int BUFFER_SIZE = 4096;
@@ -56,15 +61,9 @@ public class ZipUtil extends SimpleFileVisitor<Path> implements java.lang.AutoCl
             throw new IOException("File " + file.toString() + " not found.");
         }
         Path zipEntryPath = source.relativize(file);
-        byte[] buffer = new byte[BUFFER_SIZE];
-        try (FileInputStream fis = new FileInputStream(file.toFile())) {
-            zos.putNextEntry(new ZipEntry(normalizePath(zipEntryPath)));
-            int length;
-            while ((length = fis.read(buffer)) > 0) {
-                zos.write(buffer, 0, length);
-            }
-            zos.closeEntry();
-        }
+        zos.putNextEntry(new ZipEntry(normalizePath(zipEntryPath)));
+        Files.copy(file, zos);
+        zos.closeEntry();
         return CONTINUE;
     }
 
@@ -87,19 +86,67 @@ public class ZipUtil extends SimpleFileVisitor<Path> implements java.lang.AutoCl
 
     public static Path unzip(String targetDirName, ZipInputStream zis) throws IOException {
         Path targetDir = Files.createTempDirectory(targetDirName);
-        ZipEntry entry;
-        while ((entry = zis.getNextEntry()) != null) {
-            byte[] data = new byte[BUFFER_SIZE];
-            File target = targetDir.toFile().toPath().resolve(entry.getName()).toFile();
-            target.getParentFile().mkdirs();
-            boolean isDirectory = entry.isDirectory();
-            if ((isDirectory ? target.mkdirs() : target.createNewFile()) && !isDirectory) {
-                writeFile(zis, data, target);
+        try {
+            ZipEntry entry;
+            while ((entry = zis.getNextEntry()) != null) {
+                byte[] data = new byte[BUFFER_SIZE];
+                File target = resolveEntry(targetDir, entry).toFile();
+                target.getParentFile().mkdirs();
+                boolean isDirectory = entry.isDirectory();
+                if ((isDirectory ? target.mkdirs() : target.createNewFile()) && !isDirectory) {
+                    writeFile(zis, data, target);
+                }
             }
+        } catch (IOException | RuntimeException e) {
+            // The caller never gets the directory, so the entries already written must be deleted here
+            FileUtils.deleteQuietly(targetDir.toFile());
+            throw e;
         }
         return targetDir;
     }
 
+    /**
+     * Unzip an archive stored on the file system. Entries are read one at a time from the file, so the archive is never
+     * loaded in memory.
+     * 
+     * @param targetDirName the prefix of the temporary directory created to hold the entries
+     * @param zipFile the archive to unzip
+     * @return the temporary directory containing the entries
+     */
+    public static Path unzip(String targetDirName, Path zipFile) throws IOException {
+        Path targetDir = Files.createTempDirectory(targetDirName);
+        try (ZipFile zip = new ZipFile(zipFile.toFile())) {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                Path target = resolveEntry(targetDir, entry);
+                if (entry.isDirectory()) {
+                    Files.createDirectories(target);
+                } else {
+                    Files.createDirectories(target.getParent());
+                    try (InputStream is = zip.getInputStream(entry)) {
+                        Files.copy(is, target, StandardCopyOption.REPLACE_EXISTING);
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            FileUtils.deleteQuietly(targetDir.toFile());
+            throw e;
+        }
+        return targetDir;
+    }
+
+    /**
+     * Resolve the target of an entry, rejecting the entries that would be written outside of the target directory.
+     */
+    private static Path resolveEntry(Path targetDir, ZipEntry entry) throws IOException {
+        Path target = targetDir.resolve(entry.getName()).normalize();
+        if (!target.startsWith(targetDir.normalize())) {
+            throw new IOException(String.format("The entry `%s` is outside of the target directory.", entry.getName()));
+        }
+        return target;
+    }
+
     private static void writeFile(ZipInputStream zis, byte[] data, File target) throws IOException {
         int count;
         FileOutputStream fos = new FileOutputStream(target);
@@ -0,0 +1,130 @@
+/**
+ * Copyright (C) 2020 Bonitasoft S.A.
+ * Bonitasoft, 32 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.bonitasoft.connectors.document.templating;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.Test;
+
+class DeltaRenderingTest {
+
+    @Test
+    void should_find_keys_used_by_each_entry() throws Exception {
+        DeltaRendering deltaRendering = DeltaRendering.analyze(template("/deltatest.docx"));
+
+        assertThat(deltaRendering.getDependencies("word/document.xml")).containsOnly("body");
+        assertThat(deltaRendering.getDependencies("word/header1.xml")).containsOnly("header");
+        assertThat(deltaRendering.getAffectedEntries(Collections.singleton("header")))
+                .containsOnly("word/header1.xml");
+        assertThat(deltaRendering.getAffectedEntries(Collections.singleton("unknown"))).isEmpty();
+    }
+
+    @Test
+    void should_not_render_partially_when_previous_output_has_another_structure() throws Exception {
+        DeltaRendering deltaRendering = DeltaRendering.analyze(template("/deltatest.docx"));
+        Set<String> knownKeys = new HashSet<>(Arrays.asList("body", "header"));
+
+        assertThat(deltaRendering.canRender(template("/deltatest.docx"), knownKeys)).isTrue();
+        assertThat(deltaRendering.canRender(template("/template.odt"), knownKeys)).isFalse();
+        assertThat(deltaRendering.canRender(new byte[] { 1, 2, 3 }, knownKeys)).isFalse();
+    }
+
+    @Test
+    void should_not_render_partially_when_a_reference_is_unknown() throws Exception {
+        DeltaRendering deltaRendering = DeltaRendering.analyze(template("/deltatest.docx"));
+
+        assertThat(deltaRendering.canRender(template("/deltatest.docx"), Collections.singleton("body"))).isFalse();
+    }
+
+    @Test
+    void should_not_render_partially_when_a_reference_is_split_by_the_markup() throws Exception {
+        // `$TheField` is split in two runs of this template: `$` in the first one, `TheField` in the second one
+        DeltaRendering deltaRendering = DeltaRendering.analyze(template("/velocitytest.docx"));
+        Set<String> knownKeys = new HashSet<>(Arrays.asList("champ", "espace", "MyField", "project", "sorter"));
+
+        assertThat(deltaRendering.canRender(template("/velocitytest.docx"), knownKeys)).isFalse();
+    }
+
+    @Test
+    void should_allow_loop_variables() throws Exception {
+        DeltaRendering deltaRendering = DeltaRendering.analyze(template("/foreachtest.docx"));
+
+        assertThat(deltaRendering.canRender(template("/foreachtest.docx"), Collections.singleton("items"))).isTrue();
+    }
+
+    @Test
+    void should_stub_docx_body_when_it_is_not_affected() throws Exception {
+        DeltaRendering deltaRendering = DeltaRendering.analyze(template("/deltatest.docx"));
+
+        byte[] reducedTemplate = deltaRendering.reducedTemplate(Collections.singleton("word/header1.xml"), false);
+
+        assertThat(readEntry(reducedTemplate, "word/header1.xml")).contains("$header");
+        assertThat(readEntry(reducedTemplate, "word/document.xml"))
+                .doesNotContain("$body")
+                .contains("<w:body><w:sectPr><w:headerReference");
+    }
+
+    @Test
+    void should_stub_odt_body_and_master_styles_when_they_are_not_affected() throws Exception {
+        DeltaRendering deltaRendering = DeltaRendering.analyze(template("/template.odt"));
+
+        byte[] reducedTemplate = deltaRendering.reducedTemplate(Collections.emptySet(), true);
+
+        assertThat(readEntry(reducedTemplate, "content.xml")).containsPattern("<office:body[^>]*></office:body>");
+        assertThat(readEntry(reducedTemplate, "styles.xml"))
+                .containsPattern("<office:master-styles[^>]*></office:master-styles>");
+    }
+
+    @Test
+    void should_analyze_a_template_once() throws Exception {
+        DeltaRendering deltaRendering = DeltaRendering.of(template("/deltatest.docx"));
+
+        assertThat(DeltaRendering.of(template("/deltatest.docx"))).isSameAs(deltaRendering);
+        assertThat(DeltaRendering.of(template("/foreachtest.docx"))).isNotSameAs(deltaRendering);
+    }
+
+    @Test
+    void should_use_root_key_of_dotted_keys() {
+        assertThat(DeltaRendering.rootKey("project.name")).isEqualTo("project");
+        assertThat(DeltaRendering.rootKey("project")).isEqualTo("project");
+    }
+
+    private String readEntry(byte[] archive, String entryName) throws IOException {
+        try (ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(archive))) {
+            ZipEntry entry;
+            while ((entry = zis.getNextEntry()) != null) {
+                if (entry.getName().equals(entryName)) {
+                    return IOUtils.toString(zis, StandardCharsets.UTF_8);
+                }
+            }
+        }
+        throw new IllegalArgumentException(entryName + " not found");
+    }
+
+    private byte[] template(String name) throws IOException {
+        return IOUtils.toByteArray(DeltaRenderingTest.class.getResourceAsStream(name));
+    }
+}
@@ -25,6 +25,7 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -32,8 +33,11 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
 import org.bonitasoft.engine.api.APIAccessor;
 import org.bonitasoft.engine.api.ProcessAPI;
 import org.bonitasoft.engine.bpm.document.DocumentNotFoundException;
@@ -206,6 +210,26 @@ class DocumentTemplatingTest {
         }
     }
 
+    @Test
+    void should_replace_dotted_keys() throws Exception {
+        //given
+        byte[] content = IOUtils.toByteArray(this.getClass().getResourceAsStream("/velocitytest.docx"));
+        List<List<Object>> replacements = new ArrayList<>();
+        replacements.add(Arrays.asList("project.Name", (Object) "The dotted project"));
+
+        //when
+        byte[] result = documentTemplating.applyReplacements(content, replacements, false);
+
+        //then
+        IXDocReport report = XDocReportRegistry.getRegistry().loadReport(new ByteArrayInputStream(result),
+                TemplateEngineKind.Velocity);
+        try (ByteArrayOutputStream out = new ByteArrayOutputStream()) {
+            Options options = Options.getTo(ConverterTypeTo.XHTML).via(ConverterTypeVia.XWPF);
+            report.convert(report.createContext(), options, out);
+            assertThat(new String(out.toByteArray())).contains("The dotted project");
+        }
+    }
+
     @Test
     void should_sanitize_input_with_invalid_char_for_docx() throws Exception {
         //given
@@ -280,6 +304,280 @@ class DocumentTemplatingTest {
         }
     }
 
+    @Test
+    void should_process_large_document_through_temp_files() throws Exception {
+        //given
+        DocumentImpl document = new DocumentImpl();
+        document.setContentMimeType("theMimeType");
+        document.setFileName("template.odt");
+        document.setContentStorageId("TheStorageID");
+        byte[] content = IOUtils.toByteArray(this.getClass().getResourceAsStream("/template.odt"));
+
+        List<List<Object>> replacements = new ArrayList<>();
+        replacements.add(Arrays.asList("field", (Object) "my value"));
+        doReturn(document).when(processAPI).getLastDocument(processInstanceId, "documentName");
+        doReturn(content).when(processAPI).getDocumentContent("TheStorageID");
+
+        HashMap<String, Object> parameters = new HashMap<>();
+        parameters.put(DocumentTemplating.INPUT_DOCUMENT_INPUT, "documentName");
+        parameters.put(DocumentTemplating.INPUT_REPLACEMENTS, replacements);
+        parameters.put(DocumentTemplating.INPUT_LARGE_DOCUMENT_THRESHOLD, 1);
+
+        documentTemplating.setInputParameters(parameters);
+
+        //when
+        Map<String, Object> res = documentTemplating.execute();
+
+        //then
+        IXDocReport report = XDocReportRegistry.getRegistry().loadReport(
+                new ByteArrayInputStream(((DocumentValue) res.get(DocumentTemplating.OUTPUT_DOCUMENT)).getContent()),
+                TemplateEngineKind.Velocity);
+        try (ByteArrayOutputStream out = new ByteArrayOutputStream()) {
+            report.convert(report.createContext(), Options.getTo(ConverterTypeTo.XHTML), out);
+            assertThat(new String(out.toByteArray())).contains("my value");
+        }
+    }
+
+    @Test
+    void should_keep_previous_document_when_changed_keys_are_not_used_by_the_template() throws Exception {
+        //given
+        List<List<Object>> replacements = deltaReplacements("The body", "The header");
+        byte[] previousContent = documentTemplating.applyReplacements(deltaTemplate(), replacements, false);
+        mockTemplateAndPreviousDocument(previousContent);
+        setDeltaInputParameters(replacements, Collections.singletonList("unusedKey"));
+
+        //when
+        Map<String, Object> res = documentTemplating.execute();
+
+        //then
+        assertThat(((DocumentValue) res.get(DocumentTemplating.OUTPUT_DOCUMENT)).getContent())
+                .isEqualTo(previousContent);
+    }
+
+    @Test
+    void should_render_only_entries_using_changed_keys_into_previous_document() throws Exception {
+        //given
+        byte[] previousContent = documentTemplating.applyReplacements(deltaTemplate(),
+                deltaReplacements("The body", "The header"), false);
+        mockTemplateAndPreviousDocument(previousContent);
+        setDeltaInputParameters(deltaReplacements("The new body", "The new header"),
+                Collections.singletonList("header"));
+
+        //when
+        Map<String, Object> res = documentTemplating.execute();
+
+        //then
+        byte[] content = ((DocumentValue) res.get(DocumentTemplating.OUTPUT_DOCUMENT)).getContent();
+        assertThat(readEntry(content, "word/header1.xml")).contains("Header: The new header");
+        // The body did not change according to the changed keys, it is kept from the previous revision
+        assertThat(readEntry(content, "word/document.xml")).contains("Body: The body");
+    }
+
+    @Test
+    void should_not_evaluate_references_of_entries_not_using_changed_keys() throws Exception {
+        //given
+        byte[] previousContent = documentTemplating.applyReplacements(deltaTemplate(),
+                deltaReplacements("The body", "The header"), false);
+        mockTemplateAndPreviousDocument(previousContent);
+        CountingValue body = new CountingValue("The new body");
+        List<List<Object>> replacements = new ArrayList<>();
+        replacements.add(Arrays.asList("body", (Object) body));
+        replacements.add(Arrays.asList("header", (Object) "The new header"));
+        setDeltaInputParameters(replacements, Collections.singletonList("header"));
+
+        //when
+        Map<String, Object> res = documentTemplating.execute();
+
+        //then
+        byte[] content = ((DocumentValue) res.get(DocumentTemplating.OUTPUT_DOCUMENT)).getContent();
+        assertThat(readEntry(content, "word/header1.xml")).contains("Header: The new header");
+        assertThat(body.getEvaluations()).isZero();
+    }
+
+    @Test
+    void should_render_whole_document_when_changed_keys_are_empty() throws Exception {
+        //given
+        byte[] previousContent = documentTemplating.applyReplacements(deltaTemplate(),
+                deltaReplacements("The body", "The header"), false);
+        mockTemplateAndPreviousDocument(previousContent);
+        setDeltaInputParameters(deltaReplacements("The new body", "The new header"), new ArrayList<>());
+
+        //when
+        Map<String, Object> res = documentTemplating.execute();
+
+        //then
+        byte[] content = ((DocumentValue) res.get(DocumentTemplating.OUTPUT_DOCUMENT)).getContent();
+        assertThat(readEntry(content, "word/header1.xml")).contains("Header: The new header");
+        assertThat(readEntry(content, "word/document.xml")).contains("Body: The new body");
+    }
+
+    private byte[] deltaTemplate() throws IOException {
+        return IOUtils.toByteArray(this.getClass().getResourceAsStream("/deltatest.docx"));
+    }
+
+    private List<List<Object>> deltaReplacements(String body, String header) {
+        List<List<Object>> replacements = new ArrayList<>();
+        replacements.add(Arrays.asList("body", (Object) body));
+        replacements.add(Arrays.asList("header", (Object) header));
+        return replacements;
+    }
+
+    private void setDeltaInputParameters(List<List<Object>> replacements, List<String> changedKeys) {
+        HashMap<String, Object> parameters = new HashMap<>();
+        parameters.put(DocumentTemplating.INPUT_DOCUMENT_INPUT, "documentName");
+        parameters.put(DocumentTemplating.INPUT_REPLACEMENTS, replacements);
+        parameters.put(DocumentTemplating.INPUT_PREVIOUS_DOCUMENT, "previousDocument");
+        parameters.put(DocumentTemplating.INPUT_CHANGED_KEYS, changedKeys);
+        documentTemplating.setInputParameters(parameters);
+    }
+
+    private String readEntry(byte[] archive, String entryName) throws IOException {
+        try (ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(archive))) {
+            ZipEntry entry;
+            while ((entry = zis.getNextEntry()) != null) {
+                if (entry.getName().equals(entryName)) {
+                    return IOUtils.toString(zis, StandardCharsets.UTF_8);
+                }
+            }
+        }
+        throw new IllegalArgumentException(entryName + " not found");
+    }
+
+    private void mockTemplateAndPreviousDocument(byte[] previousContent) throws Exception {
+        DocumentImpl document = new DocumentImpl();
+        document.setContentMimeType("theMimeType");
+        document.setFileName("deltatest.docx");
+        document.setContentStorageId("TheStorageID");
+        DocumentImpl previousDocument = new DocumentImpl();
+        previousDocument.setFileName("deltatest.docx");
+        previousDocument.setHasContent(true);
+        previousDocument.setContentStorageId("ThePreviousStorageID");
+        doReturn(document).when(processAPI).getLastDocument(processInstanceId, "documentName");
+        doReturn(previousDocument).when(processAPI).getLastDocument(processInstanceId, "previousDocument");
+        doReturn(deltaTemplate()).when(processAPI).getDocumentContent("TheStorageID");
+        doReturn(previousContent).when(processAPI).getDocumentContent("ThePreviousStorageID");
+    }
+
+    @Test
+    void should_abort_generation_when_output_size_limit_is_exceeded() throws Exception {
+        //given
+        DocumentImpl document = new DocumentImpl();
+        document.setContentMimeType("theMimeType");
+        document.setFileName("velocitytest.docx");
+        document.setContentStorageId("TheStorageID");
+        byte[] content = IOUtils.toByteArray(this.getClass().getResourceAsStream("/velocitytest.docx"));
+
+        List<List<Object>> replacements = new ArrayList<>();
+        replacements.add(Arrays.asList("champ", (Object) "FIELD"));
+        doReturn(document).when(processAPI).getLastDocument(processInstanceId, "documentName");
+        doReturn(content).when(processAPI).getDocumentContent("TheStorageID");
+
+        HashMap<String, Object> parameters = new HashMap<>();
+        parameters.put(DocumentTemplating.INPUT_DOCUMENT_INPUT, "documentName");
+        parameters.put(DocumentTemplating.INPUT_REPLACEMENTS, replacements);
+        parameters.put(DocumentTemplating.INPUT_MAX_OUTPUT_SIZE, 1024L);
+
+        documentTemplating.setInputParameters(parameters);
+
+        //then
+        ConnectorException exception = assertThrows(ConnectorException.class, () -> documentTemplating.execute());
+        assertThat(exception.getMessage()).contains("documentName").contains("1024 bytes");
+    }
+
+    @Test
+    void should_compare_output_size_limit_to_the_zipped_document() throws Exception {
+        //given
+        mockTemplate("deltatest.docx");
+        // Highly compressible text, much bigger than the limit once inserted but not once zipped
+        HashMap<String, Object> parameters = new HashMap<>();
+        parameters.put(DocumentTemplating.INPUT_DOCUMENT_INPUT, "documentName");
+        parameters.put(DocumentTemplating.INPUT_REPLACEMENTS,
+                deltaReplacements(StringUtils.repeat('a', 2 * 1024 * 1024), "The header"));
+        parameters.put(DocumentTemplating.INPUT_MAX_OUTPUT_SIZE, 1024 * 1024L);
+
+        documentTemplating.setInputParameters(parameters);
+
+        //when
+        Map<String, Object> res = documentTemplating.execute();
+
+        //then
+        assertThat(((DocumentValue) res.get(DocumentTemplating.OUTPUT_DOCUMENT)).getContent().length)
+                .isLessThan(1024 * 1024);
+    }
+
+    @Test
+    void should_abort_generation_when_rendered_characters_limit_is_exceeded() throws Exception {
+        //given
+        mockTemplate("deltatest.docx");
+        HashMap<String, Object> parameters = new HashMap<>();
+        parameters.put(DocumentTemplating.INPUT_DOCUMENT_INPUT, "documentName");
+        parameters.put(DocumentTemplating.INPUT_REPLACEMENTS,
+                deltaReplacements(StringUtils.repeat('a', 2 * 1024 * 1024), "The header"));
+        parameters.put(DocumentTemplating.INPUT_MAX_RENDERED_CHARACTERS, 1024 * 1024L);
+
+        documentTemplating.setInputParameters(parameters);
+
+        //then
+        ConnectorException exception = assertThrows(ConnectorException.class, () -> documentTemplating.execute());
+        assertThat(exception.getMessage()).contains("documentName").contains("1048576 rendered characters");
+    }
+
+    private void mockTemplate(String fileName) throws Exception {
+        DocumentImpl document = new DocumentImpl();
+        document.setContentMimeType("theMimeType");
+        document.setFileName(fileName);
+        document.setContentStorageId("TheStorageID");
+        doReturn(document).when(processAPI).getLastDocument(processInstanceId, "documentName");
+        doReturn(IOUtils.toByteArray(this.getClass().getResourceAsStream("/" + fileName))).when(processAPI)
+                .getDocumentContent("TheStorageID");
+    }
+
+    @Test
+    void should_abort_generation_when_rendering_time_limit_is_exceeded() throws Exception {
+        //given
+        DocumentImpl document = new DocumentImpl();
+        document.setContentMimeType("theMimeType");
+        document.setFileName("foreachtest.docx");
+        document.setContentStorageId("TheStorageID");
+        byte[] content = IOUtils.toByteArray(this.getClass().getResourceAsStream("/foreachtest.docx"));
+
+        List<SlowItem> items = Collections.nCopies(10_000, new SlowItem());
+        List<List<Object>> replacements = new ArrayList<>();
+        replacements.add(Arrays.asList("items", (Object) items));
+        doReturn(document).when(processAPI).getLastDocument(processInstanceId, "documentName");
+        doReturn(content).when(processAPI).getDocumentContent("TheStorageID");
+
+        HashMap<String, Object> parameters = new HashMap<>();
+        parameters.put(DocumentTemplating.INPUT_DOCUMENT_INPUT, "documentName");
+        parameters.put(DocumentTemplating.INPUT_REPLACEMENTS, replacements);
+        parameters.put(DocumentTemplating.INPUT_RENDER_TIMEOUT, 1);
+
+        documentTemplating.setInputParameters(parameters);
+
+        //then
+        ConnectorException exception = assertThrows(ConnectorException.class, () -> documentTemplating.execute());
+        assertThat(exception.getMessage()).contains("documentName").contains("rendering time limit");
+    }
+
+    @Test
+    void should_not_validate_negative_limits() throws Exception {
+        DocumentImpl document = new DocumentImpl();
+        document.setContentMimeType("theMimeType");
+        document.setFileName("template.docx");
+        document.setContentStorageId("TheStorageID");
+        doReturn(document).when(processAPI).getLastDocument(processInstanceId, "documentName");
+
+        HashMap<String, Object> parameters = new HashMap<>();
+        parameters.put(DocumentTemplating.INPUT_DOCUMENT_INPUT, "documentName");
+        parameters.put(DocumentTemplating.INPUT_REPLACEMENTS, new ArrayList<>());
+        parameters.put(DocumentTemplating.INPUT_RENDER_TIMEOUT, -1);
+
+        documentTemplating.setInputParameters(parameters);
+
+        //then
+        assertThrows(ConnectorValidationException.class, () -> documentTemplating.validateInputParameters());
+    }
+
     @Test
     void should_not_validate_unsuported_documents() throws Exception {
         DocumentImpl document = new DocumentImpl();
@@ -331,6 +629,39 @@ class DocumentTemplatingTest {
         assertThat(documentTemplating.isCorrupted(fileNotCorrupted)).isFalse();
     }
 
+    public static class CountingValue {
+
+        private final String value;
+        private int evaluations;
+
+        public CountingValue(String value) {
+            this.value = value;
+        }
+
+        public int getEvaluations() {
+            return evaluations;
+        }
+
+        @Override
+        public String toString() {
+            evaluations++;
+            return value;
+        }
+    }
+
+    public static class SlowItem {
+
+        @Override
+        public String toString() {
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return "item";
+        }
+    }
+
     public class Project {
 
         private String name;
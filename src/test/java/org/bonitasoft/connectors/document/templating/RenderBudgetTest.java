@@ -0,0 +1,64 @@
+/**
+ * Copyright (C) 2020 Bonitasoft S.A.
+ * Bonitasoft, 32 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.bonitasoft.connectors.document.templating;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.bonitasoft.connectors.document.templating.RenderBudget.RenderBudgetExceededException;
+import org.junit.jupiter.api.Test;
+
+class RenderBudgetTest {
+
+    @Test
+    void should_write_through_when_unlimited() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        try (OutputStream tracked = RenderBudget.unlimited().track(out)) {
+            tracked.write(new byte[10_000]);
+        }
+
+        assertThat(out.size()).isEqualTo(10_000);
+    }
+
+    @Test
+    void should_fail_when_output_size_is_exceeded() throws IOException {
+        OutputStream tracked = new RenderBudget(0, 10, 0).track(new ByteArrayOutputStream());
+        tracked.write(new byte[10]);
+
+        assertThrows(RenderBudgetExceededException.class, () -> tracked.write(1));
+    }
+
+    @Test
+    void should_fail_when_rendered_characters_are_exceeded() throws RenderBudgetExceededException {
+        RenderBudget budget = new RenderBudget(0, 10, 100);
+        budget.checkRenderedCharacters(100);
+
+        assertThrows(RenderBudgetExceededException.class, () -> budget.checkRenderedCharacters(101));
+    }
+
+    @Test
+    void should_fail_when_time_is_exceeded() throws InterruptedException {
+        RenderBudget budget = new RenderBudget(1, 0, 0);
+        Thread.sleep(10);
+
+        assertThrows(RenderBudgetExceededException.class, budget::checkTime);
+        assertThrows(RenderBudgetExceededException.class, () -> budget.track(new ByteArrayOutputStream()).write(1));
+    }
+}
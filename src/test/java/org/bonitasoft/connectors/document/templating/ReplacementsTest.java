@@ -0,0 +1,111 @@
+/**
+ * Copyright (C) 2020 Bonitasoft S.A.
+ * Bonitasoft, 32 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.bonitasoft.connectors.document.templating;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+class ReplacementsTest {
+
+    @Test
+    void should_index_replacements_by_key() {
+        Replacements replacements = Replacements.of(rows("name", "John", "age", 42));
+
+        assertThat(replacements.keys()).containsExactly("name", "age");
+        assertThat(replacements.get("age")).isEqualTo(42);
+        assertThat(replacements.asContext()).containsEntry("name", "John").containsEntry("age", 42);
+        assertThat(replacements.getProblems()).isEmpty();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void should_nest_dotted_keys() {
+        Replacements replacements = Replacements.of(rows("customer.name", "John", "customer.address.city", "Grenoble"));
+
+        Map<String, Object> customer = (Map<String, Object>) replacements.asContext().get("customer");
+        assertThat(customer).containsEntry("name", "John");
+        assertThat((Map<String, Object>) customer.get("address")).containsEntry("city", "Grenoble");
+        assertThat(replacements.getProblems()).isEmpty();
+    }
+
+    @Test
+    void should_report_invalid_duplicated_and_conflicting_rows() {
+        List<List<Object>> rows = rows("name", "John", "name", "Jane", "", "empty", "customer", "John",
+                "customer.name", "Jane");
+        rows.add(null);
+        rows.add(Collections.singletonList("alone"));
+
+        Replacements replacements = Replacements.of(rows);
+
+        assertThat(replacements.get("name")).isEqualTo("Jane");
+        assertThat(replacements.asContext()).containsEntry("customer", "John").doesNotContainKey("");
+        assertThat(replacements.getProblems()).hasSize(5);
+    }
+
+    @Test
+    void should_have_a_stable_fingerprint() {
+        Replacements replacements = Replacements.of(rows("name", "John", "age", 42));
+
+        assertThat(replacements.fingerprint()).isPresent()
+                .isEqualTo(Replacements.of(rows("age", 42, "name", "John")).fingerprint())
+                .isNotEqualTo(Replacements.of(rows("age", 43, "name", "John")).fingerprint());
+        assertThat(replacements).isEqualTo(Replacements.of(rows("name", "John", "age", 42)));
+    }
+
+    @Test
+    void should_include_value_types_in_fingerprint() {
+        assertThat(Replacements.of(rows("value", null)).fingerprint())
+                .isNotEqualTo(Replacements.of(rows("value", "null")).fingerprint());
+        assertThat(Replacements.of(rows("value", 1)).fingerprint())
+                .isNotEqualTo(Replacements.of(rows("value", 1L)).fingerprint());
+    }
+
+    @Test
+    void should_fingerprint_nested_maps_and_lists_whatever_their_order() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("name", "John");
+        map.put("birthDates", Arrays.asList(new Date(0), LocalDate.of(2000, 1, 1)));
+        Map<String, Object> reversedMap = new LinkedHashMap<>();
+        reversedMap.put("birthDates", Arrays.asList(new Date(0), LocalDate.of(2000, 1, 1)));
+        reversedMap.put("name", "John");
+
+        assertThat(Replacements.of(rows("customer", map)).fingerprint()).isPresent()
+                .isEqualTo(Replacements.of(rows("customer", reversedMap)).fingerprint());
+    }
+
+    @Test
+    void should_not_fingerprint_values_without_well_defined_representation() {
+        assertThat(Replacements.of(rows("value", new Object())).fingerprint()).isEmpty();
+        assertThat(Replacements.of(rows("value", Collections.singletonList(new Object()))).fingerprint()).isEmpty();
+    }
+
+    private static List<List<Object>> rows(Object... keysAndValues) {
+        List<List<Object>> rows = new ArrayList<>();
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            rows.add(Arrays.asList(keysAndValues[i], keysAndValues[i + 1]));
+        }
+        return rows;
+    }
+}
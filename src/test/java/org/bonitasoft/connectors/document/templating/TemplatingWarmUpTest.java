@@ -0,0 +1,97 @@
+/**
+ * Copyright (C) 2020 Bonitasoft S.A.
+ * Bonitasoft, 32 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.bonitasoft.connectors.document.templating;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.apache.commons.io.IOUtils;
+import org.bonitasoft.connectors.document.templating.TemplatingWarmUp.WarmUpResult;
+import org.bonitasoft.engine.api.ProcessAPI;
+import org.bonitasoft.engine.bpm.document.DocumentNotFoundException;
+import org.bonitasoft.engine.bpm.document.impl.DocumentImpl;
+import org.junit.jupiter.api.Test;
+
+class TemplatingWarmUpTest {
+
+    @Test
+    void should_render_synthetic_template() {
+        WarmUpResult result = TemplatingWarmUp.warmUp(Collections.emptyMap());
+
+        assertThat(result.getRenderedTemplates()).isEqualTo(1);
+        assertThat(result.getFailedTemplates()).isZero();
+        assertThat(result.getDuration()).isPositive();
+    }
+
+    @Test
+    void should_render_process_documents() throws Exception {
+        ProcessAPI processAPI = mock(ProcessAPI.class);
+        mockDocument(processAPI, "docxTemplate", "velocitytest.docx");
+        mockDocument(processAPI, "odtTemplate", "template.odt");
+
+        WarmUpResult result = TemplatingWarmUp.warmUp(processAPI, 12L, Arrays.asList("docxTemplate", "odtTemplate"));
+
+        assertThat(result.getRenderedTemplates()).isEqualTo(3);
+        assertThat(result.getFailedTemplates()).isZero();
+    }
+
+    @Test
+    void should_render_documents_sharing_the_same_file_name() throws Exception {
+        ProcessAPI processAPI = mock(ProcessAPI.class);
+        mockDocument(processAPI, "contract", "velocitytest.docx");
+        mockDocument(processAPI, "amendment", "velocitytest.docx");
+
+        WarmUpResult result = TemplatingWarmUp.warmUp(processAPI, 12L, Arrays.asList("contract", "amendment"));
+
+        assertThat(result.getRenderedTemplates()).isEqualTo(3);
+        assertThat(result.getFailedTemplates()).isZero();
+    }
+
+    @Test
+    void should_count_missing_documents_as_failed() throws Exception {
+        ProcessAPI processAPI = mock(ProcessAPI.class);
+        mockDocument(processAPI, "docxTemplate", "velocitytest.docx");
+        doThrow(new DocumentNotFoundException("")).when(processAPI).getLastDocument(12L, "missingTemplate");
+
+        WarmUpResult result = TemplatingWarmUp.warmUp(processAPI, 12L,
+                Arrays.asList("missingTemplate", "docxTemplate"));
+
+        assertThat(result.getRenderedTemplates()).isEqualTo(2);
+        assertThat(result.getFailedTemplates()).isEqualTo(1);
+    }
+
+    @Test
+    void should_not_count_failed_templates_as_rendered() {
+        WarmUpResult result = TemplatingWarmUp
+                .warmUp(Collections.singletonMap("invalid.docx", new byte[] { 1, 2, 3 }));
+
+        assertThat(result.getRenderedTemplates()).isEqualTo(1);
+        assertThat(result.getFailedTemplates()).isEqualTo(1);
+    }
+
+    private void mockDocument(ProcessAPI processAPI, String documentName, String fileName) throws Exception {
+        DocumentImpl document = new DocumentImpl();
+        document.setFileName(fileName);
+        document.setContentStorageId(documentName);
+        doReturn(document).when(processAPI).getLastDocument(12L, documentName);
+        doReturn(IOUtils.toByteArray(TemplatingWarmUpTest.class.getResourceAsStream("/" + fileName)))
+                .when(processAPI).getDocumentContent(documentName);
+    }
+}
@@ -15,15 +15,21 @@
 package org.bonitasoft.connectors.document.templating;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
 
 import org.bonitasoft.engine.io.IOUtil;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 class ZipUtilTest {
 
@@ -58,6 +64,47 @@ class ZipUtilTest {
         }
     }
 
+    @Test
+    void should_unzip_document_from_file() throws Exception {
+        Path zipFile = Paths.get(ZipUtilTest.class.getResource("/unzipTest.docx").toURI());
+        Path target = null;
+        try {
+            target = ZipUtil.unzip("testZipOutput", zipFile);
+
+            assertThat(target.resolve("[Content_Types].xml")).exists();
+            assertThat(target.resolve("emptyFolder")).isEmptyDirectory();
+        } finally {
+            if (target != null) {
+                IOUtil.deleteDir(target.toFile());
+            }
+        }
+    }
+
+    @Test
+    void should_not_unzip_entries_outside_of_target_directory(@TempDir Path tempDir) throws IOException {
+        Path zipFile = tempDir.resolve("zipSlip.zip");
+        try (ZipOutputStream zos = new ZipOutputStream(Files.newOutputStream(zipFile))) {
+            zos.putNextEntry(new ZipEntry("valid.txt"));
+            zos.write(1);
+            zos.closeEntry();
+            zos.putNextEntry(new ZipEntry("../../zipSlip.txt"));
+            zos.write(1);
+            zos.closeEntry();
+        }
+
+        assertThrows(IOException.class, () -> ZipUtil.unzip("testZipOutputZipSlip", zipFile));
+        assertThrows(IOException.class, () -> {
+            try (ZipInputStream zis = new ZipInputStream(Files.newInputStream(zipFile))) {
+                ZipUtil.unzip("testZipOutputZipSlip", zis);
+            }
+        });
+        // The partially filled target directories have been deleted
+        try (Stream<Path> tempFiles = Files.list(Paths.get(System.getProperty("java.io.tmpdir")))) {
+            assertThat(tempFiles.map(path -> path.getFileName().toString()))
+                    .noneMatch(name -> name.startsWith("testZipOutputZipSlip"));
+        }
+    }
+
     @Test
     void should_normalize_path() {
         File file = new File("");